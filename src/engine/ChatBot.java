@@ -13,6 +13,7 @@ import java.time.format.TextStyle;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Scanner;
+import java.util.regex.Pattern;
 
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
@@ -28,6 +29,13 @@ public class ChatBot extends TelegramLongPollingBot {
 
     private static final String FEED_URL = "https://www.compass-group.fi/menuapi/feed/json?costNumber=0083&language=fi";
 
+    private static final String CALC_USAGE = "Usage: /calc <expression>, e.g. /calc 2 * (3 + 4)\n"
+            + "Operators: + - * / % ^, functions: abs, min, max, round, floor, ceil";
+
+    // /add hyväksyy vain etumerkillisiä desimaalilukuja, esim. 5, -2, 1.5 tai .5
+    private static final Pattern ADD_OPERANDI = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)");
+
+    private final Laskin laskin = new Laskin();
 
     public String etsiRuokalista() {
         ZoneId tz = ZoneId.of("Europe/Helsinki");
@@ -187,34 +195,26 @@ public class ChatBot extends TelegramLongPollingBot {
     }
 
     public String sanoTakaisin(String userMessage) {
-        // UUSI: /add <a> <b> -komento
-        // Sallii myös desimaalit. Jos tulos on kokonaisluku, palautetaan ilman
-        // .0-loppua.
-        if (userMessage != null && userMessage.trim().startsWith("/add")) {
+        // /calc <lauseke>: laskutoimitukset, sulut ja funktiot, esim. /calc 2 * (3 + 4)
+        if (userMessage != null && isKomento(userMessage, "/calc")) {
+            String lauseke = userMessage.trim().substring("/calc".length());
+            if (lauseke.trim().isEmpty()) {
+                return CALC_USAGE;
+            }
+            return laskin.laske(lauseke).getTeksti();
+        }
+
+        // /add <a> <b> on /calc-komennon lyhenne kahden luvun summalle
+        if (userMessage != null && isKomento(userMessage, "/add")) {
             String[] parts = userMessage.trim().split("\\s+");
-            if (parts.length == 3) {
-                try {
-                    // Yritä kokonaisluvuilla ensin
-                    long a = Long.parseLong(parts[1]);
-                    long b = Long.parseLong(parts[2]);
-                    return String.valueOf(a + b);
-                } catch (NumberFormatException nfeInt) {
-                    try {
-                        double a = Double.parseDouble(parts[1]);
-                        double b = Double.parseDouble(parts[2]);
-                        double sum = a + b;
-                        if (Math.floor(sum) == sum) {
-                            return String.valueOf((long) sum);
-                        } else {
-                            return String.valueOf(sum);
-                        }
-                    } catch (NumberFormatException nfeDbl) {
-                        return "Usage: /add <number> <number>, e.g. /add 5 2";
-                    }
+            if (parts.length == 3 && ADD_OPERANDI.matcher(parts[1]).matches()
+                    && ADD_OPERANDI.matcher(parts[2]).matches()) {
+                Laskin.Tulos tulos = laskin.laske("(" + parts[1] + ") + (" + parts[2] + ")");
+                if (tulos.onnistui()) {
+                    return tulos.getTeksti();
                 }
-            } else {
-                return "Usage: /add <number> <number>, e.g. /add 5 2";
             }
+            return "Usage: /add <number> <number>, e.g. /add 5 2";
         }
 
         if (userMessage.equals("/onko ohjelmointi kivaa?")) {
@@ -234,6 +234,12 @@ public class ChatBot extends TelegramLongPollingBot {
         }
     }
 
+    private static boolean isKomento(String userMessage, String komento) {
+        String t = userMessage.trim();
+        return t.startsWith(komento)
+                && (t.length() == komento.length() || Character.isWhitespace(t.charAt(komento.length())));
+    }
+
     public String etsiJukanMaksut() {
         LocalDateTime now = LocalDateTime.now();
         return "Aika nyt: " + now.toString();
@@ -0,0 +1,647 @@
+package engine;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Laskin laskee /calc-komennon lausekkeet. Lauseke käännetään ensin
+ * käänteiseen puolalaiseen notaatioon (Ohjelma), joka pidetään rajatussa
+ * välimuistissa, joten sama lauseke jäsennetään vain kerran.
+ * Kokonaisluvut lasketaan long-arvoina niin kauan kuin ne mahtuvat, ylivuodon
+ * sattuessa siirrytään tarkkaan BigDecimal-laskentaan. Jäsennys ja laskenta
+ * eivät käytä poikkeuksia virheiden välittämiseen, ja laskenta-askelten määrä
+ * on rajattu, jotta vihamielinen syöte ei jumita botin säiettä.
+ */
+public class Laskin {
+
+    private static final int VALIMUISTIN_KOKO = 128;
+    private static final int MAX_ASKELEET = 1000;
+    private static final int MAX_SYVYYS = 64;
+    private static final int MAX_NUMEROT = 500;
+    private static final int MAX_SKAALA = 10000;
+    private static final int MAX_EKSPONENTTI = 1000;
+    private static final String LIIKAA_NUMEROITA = "Result needs too many digits.";
+
+    // Käskykoodit. LUKU ja DESIMAALI saavat perässään vakiotaulukon indeksin.
+    private static final int LUKU = 0;
+    private static final int DESIMAALI = 1;
+    private static final int PLUS = 2;
+    private static final int MIINUS = 3;
+    private static final int KERTO = 4;
+    private static final int JAKO = 5;
+    private static final int JAKOJAANNOS = 6;
+    private static final int POTENSSI = 7;
+    private static final int VASTALUKU = 8;
+    private static final int ABS = 9;
+    private static final int MIN = 10;
+    private static final int MAX = 11;
+    private static final int ROUND = 12;
+    private static final int FLOOR = 13;
+    private static final int CEIL = 14;
+
+    private final Map<String, Ohjelma> valimuisti = new LinkedHashMap<String, Ohjelma>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Ohjelma> vanhin) {
+            return size() > VALIMUISTIN_KOKO;
+        }
+    };
+
+    /**
+     * Laskun lopputulos: joko muotoiltu arvo tai virheilmoitus.
+     */
+    public static final class Tulos {
+
+        private final String teksti;
+        private final boolean onnistui;
+
+        private Tulos(String teksti, boolean onnistui) {
+            this.teksti = teksti;
+            this.onnistui = onnistui;
+        }
+
+        public boolean onnistui() {
+            return onnistui;
+        }
+
+        public String getTeksti() {
+            return teksti;
+        }
+    }
+
+    public Tulos laske(String lauseke) {
+        String avain = (lauseke == null) ? "" : lauseke.trim();
+
+        Ohjelma ohjelma;
+        synchronized (valimuisti) {
+            ohjelma = valimuisti.get(avain);
+        }
+        if (ohjelma == null) {
+            ohjelma = new Kaantaja(avain).kaanna();
+            synchronized (valimuisti) {
+                valimuisti.put(avain, ohjelma);
+            }
+        }
+
+        if (ohjelma.virhe != null)
+            return new Tulos(ohjelma.virhe, false);
+        return new Laskenta(ohjelma).suorita();
+    }
+
+    private static String muotoile(BigDecimal arvo) {
+        if (arvo.signum() == 0)
+            return "0";
+        BigDecimal v = arvo.stripTrailingZeros();
+        // Hyvin suuret ja pienet luvut tieteellisellä merkinnällä, muut tavallisesti
+        int pituus = (v.scale() < 0) ? v.precision() - v.scale() : Math.max(v.precision(), v.scale());
+        return (pituus <= MAX_NUMEROT) ? v.toPlainString() : v.toString();
+    }
+
+    /**
+     * Käännetty lauseke: käskyt ja niiden käyttämät vakiot. Muuttumaton, joten
+     * samaa ohjelmaa voi suorittaa useasta säikeestä yhtä aikaa.
+     */
+    private static final class Ohjelma {
+
+        final int[] koodi;
+        final long[] luvut;
+        final BigDecimal[] desimaalit;
+        final int maxPino;
+        final String virhe;
+
+        Ohjelma(int[] koodi, long[] luvut, BigDecimal[] desimaalit, int maxPino) {
+            this.koodi = koodi;
+            this.luvut = luvut;
+            this.desimaalit = desimaalit;
+            this.maxPino = maxPino;
+            this.virhe = null;
+        }
+
+        Ohjelma(String virhe) {
+            this.koodi = null;
+            this.luvut = null;
+            this.desimaalit = null;
+            this.maxPino = 0;
+            this.virhe = virhe;
+        }
+    }
+
+    /**
+     * Rekursiivisesti etenevä jäsentäjä. Kielioppi:
+     *
+     * <pre>
+     * lauseke   = termi (('+' | '-') termi)*
+     * termi     = etumerkki (('*' | '/' | '%') etumerkki)*
+     * etumerkki = ('-' | '+') etumerkki | potenssi
+     * potenssi  = alkio ('^' etumerkki)?
+     * alkio     = luku | '(' lauseke ')' | nimi '(' lauseke (',' lauseke)* ')'
+     * </pre>
+     */
+    private static final class Kaantaja {
+
+        private final String s;
+        private int pos;
+        private int[] koodi = new int[16];
+        private int koko;
+        private final List<Long> luvut = new ArrayList<>();
+        private final List<BigDecimal> desimaalit = new ArrayList<>();
+        private int pino;
+        private int maxPino;
+        private int syvyys;
+        private String virhe;
+
+        Kaantaja(String s) {
+            this.s = s;
+        }
+
+        Ohjelma kaanna() {
+            if (seuraava() == '\0')
+                return new Ohjelma("Empty expression.");
+            if (!lauseke())
+                return new Ohjelma(virhe);
+            if (seuraava() != '\0')
+                return new Ohjelma(odottamaton());
+            if (koko > MAX_ASKELEET)
+                return new Ohjelma("Expression is too long.");
+
+            long[] l = new long[luvut.size()];
+            for (int i = 0; i < l.length; i++)
+                l[i] = luvut.get(i);
+            int[] k = new int[koko];
+            System.arraycopy(koodi, 0, k, 0, koko);
+            return new Ohjelma(k, l, desimaalit.toArray(new BigDecimal[0]), maxPino);
+        }
+
+        private boolean lauseke() {
+            if (!termi())
+                return false;
+            while (true) {
+                char c = seuraava();
+                if (c != '+' && c != '-')
+                    return true;
+                pos++;
+                if (!termi())
+                    return false;
+                kirjoita(c == '+' ? PLUS : MIINUS, -1);
+            }
+        }
+
+        private boolean termi() {
+            if (!etumerkki())
+                return false;
+            while (true) {
+                char c = seuraava();
+                int op;
+                if (c == '*')
+                    op = KERTO;
+                else if (c == '/')
+                    op = JAKO;
+                else if (c == '%')
+                    op = JAKOJAANNOS;
+                else
+                    return true;
+                pos++;
+                if (!etumerkki())
+                    return false;
+                kirjoita(op, -1);
+            }
+        }
+
+        private boolean etumerkki() {
+            // Jokainen sulkutaso ja etumerkki kulkee tätä kautta, joten syvyys rajataan tässä
+            if (++syvyys > MAX_SYVYYS)
+                return virhe("Expression is nested too deeply.");
+            boolean ok;
+            char c = seuraava();
+            if (c == '-') {
+                pos++;
+                ok = etumerkki();
+                if (ok)
+                    kirjoita(VASTALUKU, 0);
+            } else if (c == '+') {
+                pos++;
+                ok = etumerkki();
+            } else {
+                ok = potenssi();
+            }
+            syvyys--;
+            return ok;
+        }
+
+        private boolean potenssi() {
+            if (!alkio())
+                return false;
+            if (seuraava() == '^') {
+                pos++;
+                if (!etumerkki())
+                    return false;
+                kirjoita(POTENSSI, -1);
+            }
+            return true;
+        }
+
+        private boolean alkio() {
+            char c = seuraava();
+            if ((c >= '0' && c <= '9') || c == '.')
+                return luku();
+            if (c == '(') {
+                pos++;
+                if (!lauseke())
+                    return false;
+                return odota(')');
+            }
+            if (Character.isLetter(c))
+                return funktio();
+            return virhe(odottamaton());
+        }
+
+        private boolean luku() {
+            int alku = pos;
+            long arvo = 0;
+            boolean ylivuoto = false;
+            int numerot = 0;
+            while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+                int d = s.charAt(pos++) - '0';
+                if (arvo > (Long.MAX_VALUE - d) / 10)
+                    ylivuoto = true;
+                else
+                    arvo = arvo * 10 + d;
+                numerot++;
+            }
+            int desimaaleja = -1;
+            if (pos < s.length() && s.charAt(pos) == '.') {
+                pos++;
+                desimaaleja = 0;
+                while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+                    pos++;
+                    desimaaleja++;
+                }
+            }
+            if (numerot + Math.max(desimaaleja, 0) == 0)
+                return virhe("Invalid number at position " + (alku + 1) + ".");
+            if (numerot + Math.max(desimaaleja, 0) > MAX_NUMEROT)
+                return virhe("Number is too long at position " + (alku + 1) + ".");
+
+            if (desimaaleja <= 0 && !ylivuoto) {
+                luvut.add(arvo);
+                kirjoita(LUKU, 1);
+                kirjoita(luvut.size() - 1, 0);
+            } else {
+                // Merkit on jo tarkistettu numeroiksi, joten BigInteger ei voi epäonnistua
+                String mantissa = s.substring(alku, pos).replace(".", "");
+                desimaalit.add(new BigDecimal(new BigInteger(mantissa), Math.max(desimaaleja, 0)));
+                kirjoita(DESIMAALI, 1);
+                kirjoita(desimaalit.size() - 1, 0);
+            }
+            return true;
+        }
+
+        private boolean funktio() {
+            int alku = pos;
+            while (pos < s.length() && Character.isLetter(s.charAt(pos)))
+                pos++;
+            String nimi = s.substring(alku, pos).toLowerCase(Locale.ROOT);
+            int op = funktionKoodi(nimi);
+            if (op < 0)
+                return virhe("Unknown function '" + nimi + "' at position " + (alku + 1) + ".");
+            if (!odota('('))
+                return false;
+
+            int argumentit = 0;
+            do {
+                if (argumentit > 0)
+                    pos++; // pilkku
+                if (!lauseke())
+                    return false;
+                argumentit++;
+            } while (seuraava() == ',');
+            if (!odota(')'))
+                return false;
+
+            int odotetut = (op == MIN || op == MAX) ? 2 : 1;
+            if (argumentit != odotetut)
+                return virhe(nimi + "() takes " + odotetut + " argument" + (odotetut == 1 ? "" : "s") + ".");
+            kirjoita(op, 1 - odotetut);
+            return true;
+        }
+
+        private static int funktionKoodi(String nimi) {
+            switch (nimi) {
+            case "abs":
+                return ABS;
+            case "min":
+                return MIN;
+            case "max":
+                return MAX;
+            case "round":
+                return ROUND;
+            case "floor":
+                return FLOOR;
+            case "ceil":
+                return CEIL;
+            default:
+                return -1;
+            }
+        }
+
+        private void kirjoita(int arvo, int pinonMuutos) {
+            if (koko == koodi.length) {
+                int[] uusi = new int[koko * 2];
+                System.arraycopy(koodi, 0, uusi, 0, koko);
+                koodi = uusi;
+            }
+            koodi[koko++] = arvo;
+            pino += pinonMuutos;
+            if (pino > maxPino)
+                maxPino = pino;
+        }
+
+        private boolean odota(char c) {
+            if (seuraava() != c)
+                return virhe(odottamaton());
+            pos++;
+            return true;
+        }
+
+        private char seuraava() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+                pos++;
+            return (pos < s.length()) ? s.charAt(pos) : '\0';
+        }
+
+        private String odottamaton() {
+            if (pos >= s.length())
+                return "Unexpected end of expression.";
+            return "Unexpected character '" + s.charAt(pos) + "' at position " + (pos + 1) + ".";
+        }
+
+        private boolean virhe(String viesti) {
+            if (virhe == null)
+                virhe = viesti;
+            return false;
+        }
+    }
+
+    /**
+     * Yhden ohjelman suoritus. Pinon paikka i on long-arvo, jos desimaalit[i]
+     * on null, muuten BigDecimal-arvo.
+     */
+    private static final class Laskenta {
+
+        private final Ohjelma ohjelma;
+        private final long[] luvut;
+        private final BigDecimal[] desimaalit;
+        private int sp;
+        private int askeleet;
+        private String virhe;
+
+        Laskenta(Ohjelma ohjelma) {
+            this.ohjelma = ohjelma;
+            this.luvut = new long[ohjelma.maxPino];
+            this.desimaalit = new BigDecimal[ohjelma.maxPino];
+        }
+
+        Tulos suorita() {
+            int[] k = ohjelma.koodi;
+            for (int pc = 0; pc < k.length; pc++) {
+                if (!askel(1))
+                    return new Tulos(virhe, false);
+                int op = k[pc];
+                boolean ok;
+                switch (op) {
+                case LUKU:
+                    ok = asetaLong(sp++, ohjelma.luvut[k[++pc]]);
+                    break;
+                case DESIMAALI:
+                    ok = asetaBig(sp++, ohjelma.desimaalit[k[++pc]]);
+                    break;
+                case VASTALUKU:
+                case ABS:
+                case ROUND:
+                case FLOOR:
+                case CEIL:
+                    ok = yksipaikkainen(op, sp - 1);
+                    break;
+                default:
+                    sp--;
+                    ok = kaksipaikkainen(op, sp - 1, sp);
+                    break;
+                }
+                if (!ok)
+                    return new Tulos(virhe, false);
+            }
+            String teksti = onLong(0) ? String.valueOf(luvut[0]) : muotoile(desimaalit[0]);
+            return new Tulos(teksti, true);
+        }
+
+        private boolean yksipaikkainen(int op, int i) {
+            if (onLong(i)) {
+                long x = luvut[i];
+                if (op == VASTALUKU || (op == ABS && x < 0)) {
+                    if (x != Long.MIN_VALUE)
+                        return asetaLong(i, -x);
+                } else {
+                    return true; // pyöristykset eivät muuta kokonaislukua
+                }
+            }
+            BigDecimal x = big(i);
+            switch (op) {
+            case VASTALUKU:
+                return asetaBig(i, x.negate());
+            case ABS:
+                return asetaBig(i, x.abs());
+            case ROUND:
+                return asetaBig(i, x.setScale(0, RoundingMode.HALF_UP));
+            case FLOOR:
+                return asetaBig(i, x.setScale(0, RoundingMode.FLOOR));
+            default:
+                return asetaBig(i, x.setScale(0, RoundingMode.CEILING));
+            }
+        }
+
+        private boolean kaksipaikkainen(int op, int i, int j) {
+            boolean longit = onLong(i) && onLong(j);
+            long x = luvut[i];
+            long y = luvut[j];
+            switch (op) {
+            case PLUS:
+                if (longit) {
+                    long r = x + y;
+                    if (((x ^ r) & (y ^ r)) >= 0)
+                        return asetaLong(i, r);
+                }
+                return asetaBig(i, big(i).add(big(j)));
+            case MIINUS:
+                if (longit) {
+                    long r = x - y;
+                    if (((x ^ y) & (x ^ r)) >= 0)
+                        return asetaLong(i, r);
+                }
+                return asetaBig(i, big(i).subtract(big(j)));
+            case KERTO:
+                if (longit && !kertoYlivuotaa(x, y))
+                    return asetaLong(i, x * y);
+                return asetaBig(i, big(i).multiply(big(j)));
+            case JAKO:
+                if (big(j).signum() == 0)
+                    return virhe("Division by zero.");
+                if (longit && !(x == Long.MIN_VALUE && y == -1) && x % y == 0)
+                    return asetaLong(i, x / y);
+                return asetaBig(i, jaa(big(i), big(j)));
+            case JAKOJAANNOS:
+                if (big(j).signum() == 0)
+                    return virhe("Division by zero.");
+                if (longit)
+                    return asetaLong(i, (y == -1) ? 0 : x % y);
+                return asetaBig(i, big(i).remainder(big(j)));
+            case POTENSSI:
+                return potenssi(i, j);
+            case MIN:
+            case MAX:
+                int vertailu = longit ? Long.compare(x, y) : big(i).compareTo(big(j));
+                if ((op == MIN) == (vertailu > 0)) {
+                    luvut[i] = y;
+                    desimaalit[i] = desimaalit[j];
+                }
+                return true;
+            default:
+                return virhe("Unknown instruction " + op + ".");
+            }
+        }
+
+        private boolean potenssi(int i, int j) {
+            BigDecimal e = big(j);
+            if (e.signum() != 0 && e.stripTrailingZeros().scale() > 0)
+                return virhe("Exponent must be an integer.");
+            if (e.abs().compareTo(BigDecimal.valueOf(MAX_EKSPONENTTI)) > 0)
+                return virhe("Exponent must be between -" + MAX_EKSPONENTTI + " and " + MAX_EKSPONENTTI + ".");
+            int n = e.intValue();
+            int m = Math.abs(n);
+
+            if (n < 0 && (onLong(i) ? luvut[i] == 0 : desimaalit[i].signum() == 0))
+                return virhe("Division by zero.");
+
+            // Negatiivinen eksponentti lasketaan tarkkana käänteislukuna 1 / x^|n|,
+            // joten x^|n| käy läpi samat rajat kuin positiivisella eksponentilla.
+            if (!potenssiItseisarvolla(i, m))
+                return false;
+            if (n < 0)
+                return asetaBig(i, jaa(BigDecimal.ONE, big(i)));
+            return true;
+        }
+
+        private boolean potenssiItseisarvolla(int i, int m) {
+            if (onLong(i)) {
+                // Neliöinti ja kertominen long-arvoilla, kunnes tulos ylivuotaa
+                long kanta = luvut[i];
+                long tulos = 1;
+                int k = m;
+                boolean ylivuoto = false;
+                while (k > 0 && !ylivuoto) {
+                    if (!askel(1))
+                        return false;
+                    if ((k & 1) != 0) {
+                        ylivuoto = kertoYlivuotaa(tulos, kanta);
+                        tulos *= kanta;
+                    }
+                    k >>= 1;
+                    if (k > 0 && !ylivuoto) {
+                        ylivuoto = kertoYlivuotaa(kanta, kanta);
+                        kanta *= kanta;
+                    }
+                }
+                if (!ylivuoto)
+                    return asetaLong(i, tulos);
+            }
+
+            BigDecimal x = big(i);
+            if (numeroitaArvio(x, m) > MAX_NUMEROT + 1 || Math.abs((long) x.scale() * m) > MAX_SKAALA)
+                return virhe(LIIKAA_NUMEROITA);
+            if (!askel(2 * (32 - Integer.numberOfLeadingZeros(m))))
+                return false;
+            return asetaBig(i, x.pow(m));
+        }
+
+        private static double numeroitaArvio(BigDecimal x, int n) {
+            // x^n kokonaisosan numeroiden määrä on noin n * log10(|x:n skaalaamaton arvo|).
+            // Tarkka raja tarkistetaan vasta tuloksesta asetaBig-metodissa.
+            BigInteger u = x.unscaledValue().abs();
+            if (u.signum() == 0)
+                return 0;
+            int siirto = Math.max(0, u.bitLength() - 62);
+            double log10 = Math.log10(u.shiftRight(siirto).doubleValue()) + siirto * Math.log10(2);
+            return Math.floor(n * log10) + 1;
+        }
+
+        private static BigDecimal jaa(BigDecimal x, BigDecimal y) {
+            // Tasataan skaalat, jolloin x / y = a / b kokonaisluvuilla. Jos jakojäännös
+            // on nolla, osamäärä on tarkka. Muuten kokonaisosa pidetään tarkkana ja
+            // sen perään lasketaan DECIMAL64:n verran merkitseviä numeroita.
+            int skaala = Math.max(x.scale(), y.scale());
+            BigInteger a = x.setScale(skaala).unscaledValue();
+            BigInteger b = y.setScale(skaala).unscaledValue();
+            BigInteger[] osamaaraJaJaannos = a.divideAndRemainder(b);
+            BigDecimal kokonaisosa = new BigDecimal(osamaaraJaJaannos[0]);
+            if (osamaaraJaJaannos[1].signum() == 0)
+                return kokonaisosa;
+            if (kokonaisosa.signum() == 0)
+                return x.divide(y, MathContext.DECIMAL64);
+            int tarkkuus = kokonaisosa.precision() + MathContext.DECIMAL64.getPrecision();
+            return x.divide(y, new MathContext(tarkkuus, RoundingMode.HALF_EVEN));
+        }
+
+        private static boolean kertoYlivuotaa(long x, long y) {
+            // Sama tarkistus kuin Math.multiplyExact, mutta ilman poikkeusta
+            long r = x * y;
+            long ax = Math.abs(x);
+            long ay = Math.abs(y);
+            if (((ax | ay) >>> 31) == 0)
+                return false;
+            return (y != 0 && r / y != x) || (x == Long.MIN_VALUE && y == -1);
+        }
+
+        private boolean onLong(int i) {
+            return desimaalit[i] == null;
+        }
+
+        private BigDecimal big(int i) {
+            return (desimaalit[i] != null) ? desimaalit[i] : BigDecimal.valueOf(luvut[i]);
+        }
+
+        private boolean asetaLong(int i, long arvo) {
+            luvut[i] = arvo;
+            desimaalit[i] = null;
+            return true;
+        }
+
+        private boolean asetaBig(int i, BigDecimal arvo) {
+            if (arvo.precision() > MAX_NUMEROT || Math.abs(arvo.scale()) > MAX_SKAALA)
+                return virhe(LIIKAA_NUMEROITA);
+            // Pienet kokonaisluvut takaisin nopealle long-polulle
+            if (arvo.scale() == 0 && arvo.precision() < 19)
+                return asetaLong(i, arvo.longValue());
+            desimaalit[i] = arvo;
+            return true;
+        }
+
+        private boolean askel(int maara) {
+            askeleet += maara;
+            if (askeleet > MAX_ASKELEET)
+                return virhe("Expression takes too many steps to evaluate.");
+            return true;
+        }
+
+        private boolean virhe(String viesti) {
+            virhe = viesti;
+            return false;
+        }
+    }
+}